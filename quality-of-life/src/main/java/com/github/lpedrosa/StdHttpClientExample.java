@@ -14,18 +14,33 @@ import java.net.http.HttpResponse.BodyHandlers;
 import java.net.http.HttpResponse.BodySubscriber;
 import java.net.http.HttpResponse.BodySubscribers;
 import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import javax.net.ssl.SSLContext;
@@ -33,6 +48,15 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -50,6 +74,12 @@ public final class StdHttpClientExample {
         // here we want to configure the http client a bit more
         configuringExecutor();
 
+        // here we stop piling requests onto an upstream that is already struggling
+        limitingConcurrency();
+
+        // here we find out where the time of each request actually goes
+        recordingPhases();
+
         // here we configure the different SSL options
         configuringSslOptions();
     }
@@ -212,6 +242,131 @@ public final class StdHttpClientExample {
         }
     }
 
+    private static void limitingConcurrency() throws Exception {
+        // a request timeout (see settingTimeouts) only bounds how long *one* request
+        // waits. It does nothing to stop us from sending more and more requests to
+        // an upstream that is already slowing down, which usually makes things worse.
+        //
+        // Little's law says: in-flight requests = throughput * latency
+        // so if latency goes up while the upstream's throughput stays the same, the
+        // number of requests we keep in-flight should go down. The
+        // AdaptiveHttpClient below keeps a limit per origin, and adjusts it by
+        // comparing the recent latency against the usual latency it observes
+        // (gradient style, similar to TCP Vegas). Once the limit is reached, new
+        // requests fail fast instead of queueing.
+        //
+        // On top of that, a high rate of timeouts trips a circuit breaker, which
+        // rejects everything for a while and then lets a single probe request through.
+        var client = new AdaptiveHttpClient(HttpClient.newHttpClient());
+
+        // httpstat.us will delay each of these responses by 300ms
+        var request = HttpRequest.newBuilder(URI.create("https://httpstat.us/200?sleep=300"))
+                                 .timeout(Duration.ofMillis(1000))
+                                 .GET()
+                                 .build();
+
+        var futures = Stream.generate(() -> request)
+                            .limit(50)
+                            .map(r -> client.sendAsync(r, BodyHandlers.discarding())
+                                            .handle((response, e) -> {
+                                                if (e == null) {
+                                                    return "status " + response.statusCode();
+                                                }
+                                                // unwrap so we print the actual reason
+                                                var cause = e instanceof CompletionException ? e.getCause() : e;
+                                                return cause.getClass()
+                                                            .getSimpleName();
+                                            }))
+                            .toArray(CompletableFuture<?>[]::new);
+
+        CompletableFuture.allOf(futures)
+                         .join();
+
+        // requests over the initial limit were rejected straight away
+        var outcomes = Stream.of(futures)
+                             .map(CompletableFuture::join)
+                             .collect(Collectors.groupingBy(o -> o, Collectors.counting()));
+        System.out.println("limitingConcurrency -> outcomes: " + outcomes);
+
+        // the current limit and breaker state are exposed per origin, so you can
+        // report them to whatever metrics system you use
+        client.metrics()
+              .forEach((origin, metrics) -> System.out.println(
+                      String.format("limitingConcurrency -> %s: %s", origin, metrics)));
+    }
+
+    private static void recordingPhases() throws Exception {
+        // the only timing we had so far was the Instant.now()/Duration.between around
+        // allOf in configuringExecutor, which doesn't tell us *where* the time went:
+        // waiting for an executor thread, waiting for the response headers or reading
+        // the body and decoding it.
+        //
+        // JDK Flight Recorder lets us define our own events (see HttpExchangeEvent and
+        // friends bellow). When no recording is running the events are disabled, and
+        // the TracedHttpClient skips all of its bookkeeping, so leaving this in
+        // production code costs close to nothing.
+        //
+        // NOTE: the httpclient doesn't expose any hooks for connecting or the TLS
+        // handshake, so these end up inside the "time to headers" phase
+        var histograms = new PhaseHistograms();
+
+        var myExecutor = Executors.newFixedThreadPool(2);
+        var client = new TracedHttpClient(HttpClient.newBuilder()
+                                                    .executor(new QueueTimingExecutor(myExecutor, histograms))
+                                                    .build(),
+                histograms);
+        var mapper = new ObjectMapper();
+
+        var request = HttpRequest.newBuilder(URI.create("https://httpstat.us/200"))
+                                 .GET()
+                                 .header("Accept", "application/json")
+                                 .build();
+
+        // you would normally start a recording from the command line instead e.g.
+        // java -XX:StartFlightRecording=filename=http-phases.jfr ...
+        // but here we start one programmatically, so the example is self-contained
+        try (var recording = new Recording()) {
+            recording.enable(HttpExchangeEvent.class);
+            recording.enable(ExecutorQueueEvent.class);
+            recording.enable(JsonDecodeEvent.class);
+            recording.start();
+
+            var futures = Stream.generate(() -> request)
+                                .limit(5)
+                                .map(r -> client.sendAsync(r,
+                                        jsonBodyHandler(mapper, HttpStatusResponse.class, r.uri(), histograms)))
+                                .collect(Collectors.toList());
+
+            for (var future : futures) {
+                // decoding happens here, in the caller's thread
+                var decoded = future.join()
+                                    .body()
+                                    .get();
+                System.out.println("recordingPhases -> decoded " + decoded.getCode());
+            }
+
+            recording.stop();
+
+            // inspect it with JDK Mission Control or
+            // jfr print --events com.github.lpedrosa.HttpExchange http-phases.jfr
+            var file = Path.of("http-phases.jfr");
+            recording.dump(file);
+            System.out.println("recordingPhases -> recording written to " + file.toAbsolutePath());
+        } finally {
+            myExecutor.shutdown();
+            myExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        // the same phases are also available without JFR
+        System.out.println("recordingPhases -> histograms:");
+        System.out.println(histograms);
+
+        // or look up a single origin and phase
+        histograms.get(originOf(request.uri()), Phase.JSON_DECODE, Outcome.SUCCESS)
+                  .ifPresent(decode -> System.out.println("recordingPhases -> average decode time: "
+                          + TimeUnit.NANOSECONDS.toMicros(decode.getTotalNanos() / decode.getCount()) + "us"));
+    }
+
     private static void configuringSslOptions() throws Exception {
         // you can create a client that ignores cert validation i.e. similar to "curl
         // -k" by giving it a trust manager that accepts everything.
@@ -343,6 +498,706 @@ public final class StdHttpClientExample {
         return downstream;
     }
 
+    private static <T> BodyHandler<Supplier<T>> jsonBodyHandler(
+            ObjectMapper objectMapper,
+            Class<T> targetType,
+            URI uri,
+            PhaseRecorder recorder) {
+        var origin = originOf(uri);
+        return (HttpResponse.ResponseInfo ri) -> timedDecoding(
+                asJSON(objectMapper, targetType),
+                targetType,
+                origin,
+                ri.statusCode(),
+                recorder);
+    }
+
+    private static <T> BodySubscriber<Supplier<T>> timedDecoding(
+            BodySubscriber<Supplier<T>> upstream,
+            Class<T> targetType,
+            String origin,
+            int statusCode,
+            PhaseRecorder recorder) {
+        return BodySubscribers.mapping(
+                upstream,
+                (Supplier<T> decode) -> () -> {
+                    var event = new JsonDecodeEvent();
+                    event.begin();
+                    var start = System.nanoTime();
+                    var outcome = Outcome.FAILURE;
+                    try {
+                        var decoded = decode.get();
+                        outcome = Outcome.SUCCESS;
+                        return decoded;
+                    } finally {
+                        recorder.record(origin, Phase.JSON_DECODE, outcome, System.nanoTime() - start);
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.origin = origin;
+                            event.targetType = targetType.getName();
+                            event.status = statusCode;
+                            event.failed = outcome == Outcome.FAILURE;
+                            event.commit();
+                        }
+                    }
+                });
+    }
+
+    private static String originOf(URI uri) {
+        // built from the parts we want, rather than using URI#getAuthority, which
+        // would also include any user info (i.e. credentials)
+        var port = uri.getPort() == -1 ? "" : ":" + uri.getPort();
+        return uri.getScheme() + "://" + uri.getHost() + port;
+    }
+
+    private static final class AdaptiveHttpClient {
+        private final HttpClient delegate;
+        private final Map<String, Origin> origins = new ConcurrentHashMap<>();
+
+        AdaptiveHttpClient(HttpClient delegate) {
+            this.delegate = delegate;
+        }
+
+        <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> bodyHandler) {
+            var key = originOf(request.uri());
+            var origin = origins.computeIfAbsent(key, k -> new Origin());
+
+            // the limiter goes first, otherwise we could hand out the breaker's single
+            // half-open probe and then reject the request anyway
+            if (!origin.limiter.tryAcquire()) {
+                return CompletableFuture.failedFuture(
+                        new RejectedExecutionException("Concurrency limit reached for " + key));
+            }
+            var admission = origin.breaker.tryAcquire();
+            if (admission == Admission.REJECTED) {
+                origin.limiter.onIgnore();
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Circuit open for " + key));
+            }
+            var probe = admission == Admission.PROBE;
+
+            var start = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> response;
+            try {
+                response = delegate.sendAsync(request, bodyHandler);
+            } catch (RuntimeException e) {
+                // e.g. IllegalArgumentException for an invalid request, we still need to
+                // give back our slot and the probe, otherwise they would leak forever
+                origin.limiter.onIgnore();
+                origin.breaker.onIgnore(probe);
+                return CompletableFuture.failedFuture(e);
+            }
+
+            return response.whenComplete((r, e) -> {
+                if (e == null) {
+                    // any response counts, even a 5xx: the upstream answered and
+                    // that tells us how long it takes to do so
+                    origin.limiter.onSample(System.nanoTime() - start);
+                    origin.breaker.onSuccess(probe);
+                } else if (isTimeout(e)) {
+                    origin.limiter.onDrop();
+                    origin.breaker.onTimeout(probe);
+                } else {
+                    origin.limiter.onIgnore();
+                    origin.breaker.onIgnore(probe);
+                }
+            });
+        }
+
+        Map<String, OriginMetrics> metrics() {
+            return origins.entrySet()
+                          .stream()
+                          .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> e.getValue()
+                                                                                         .snapshot()));
+        }
+
+        private static boolean isTimeout(Throwable e) {
+            var cause = e instanceof CompletionException ? e.getCause() : e;
+            // HttpConnectTimeoutException is a subclass of HttpTimeoutException, so this
+            // covers both connect and request timeouts
+            return cause instanceof HttpTimeoutException;
+        }
+
+        private static final class Origin {
+            private final GradientLimiter limiter = new GradientLimiter();
+            private final CircuitBreaker breaker = new CircuitBreaker();
+
+            OriginMetrics snapshot() {
+                return new OriginMetrics(limiter.limit(), limiter.inFlight(), breaker.state());
+            }
+        }
+    }
+
+    private static final class OriginMetrics {
+        private final int limit;
+        private final int inFlight;
+        private final CircuitState circuitState;
+
+        OriginMetrics(int limit, int inFlight, CircuitState circuitState) {
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.circuitState = circuitState;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("limit=%d, inFlight=%d, circuit=%s", limit, inFlight, circuitState);
+        }
+    }
+
+    private static final class GradientLimiter {
+        private static final int INITIAL_LIMIT = 20;
+        private static final int MIN_LIMIT = 1;
+        private static final int MAX_LIMIT = 200;
+        // how much weight a new estimate gets, so a single slow response doesn't
+        // halve the limit
+        private static final double SMOOTHING = 0.2;
+        // how much weight a new sample gets in the short-term (last ~10 requests) and
+        // long-term (last ~100 requests) latency. The long-term one follows a
+        // permanent change in the upstream (e.g. it moved further away), so that
+        // doesn't keep the limit low forever
+        private static final double SHORT_RTT_SMOOTHING = 0.1;
+        private static final double LONG_RTT_SMOOTHING = 0.01;
+        // how much slower than the long-term latency we tolerate before we consider
+        // requests to be queueing, otherwise normal jitter would shrink the limit
+        private static final double TOLERANCE = 2.0;
+        private static final double DROP_FACTOR = 0.9;
+
+        private double limit = INITIAL_LIMIT;
+        private int inFlight;
+        private double shortRttNanos;
+        private double longRttNanos;
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void onSample(long rttNanos) {
+            // how many requests were in-flight, including this one
+            var used = inFlight--;
+
+            if (longRttNanos == 0) {
+                shortRttNanos = rttNanos;
+                longRttNanos = rttNanos;
+            } else {
+                shortRttNanos = (1 - SHORT_RTT_SMOOTHING) * shortRttNanos + SHORT_RTT_SMOOTHING * rttNanos;
+                longRttNanos = (1 - LONG_RTT_SMOOTHING) * longRttNanos + LONG_RTT_SMOOTHING * rttNanos;
+            }
+
+            // we are not using what we already have, so these samples say nothing
+            // about how many requests the upstream can take, either way
+            if (used < limit / 2) {
+                return;
+            }
+
+            // gradient < 1 means recent responses are a lot slower than usual i.e.
+            // requests are queueing somewhere upstream, so we should send fewer of them
+            var gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+            // the square root gives some headroom, so the limit can still grow while
+            // latency is stable
+            var newLimit = limit * gradient + Math.sqrt(limit);
+
+            limit = clamp((1 - SMOOTHING) * limit + SMOOTHING * newLimit);
+        }
+
+        synchronized void onDrop() {
+            inFlight--;
+            limit = clamp(limit * DROP_FACTOR);
+        }
+
+        synchronized void onIgnore() {
+            inFlight--;
+        }
+
+        synchronized int limit() {
+            return (int) limit;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        private static double clamp(double value) {
+            return Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, value));
+        }
+    }
+
+    private enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private enum Admission {
+        REJECTED, ALLOWED, PROBE
+    }
+
+    private static final class CircuitBreaker {
+        // trip when at least half of the last WINDOW_SIZE requests timed out. A rate
+        // rather than a run of consecutive timeouts, since with concurrent traffic a
+        // degrading upstream still answers some requests in between
+        private static final int WINDOW_SIZE = 20;
+        private static final double TIMEOUT_RATE_THRESHOLD = 0.5;
+        private static final long OPEN_NANOS = Duration.ofSeconds(5)
+                                                       .toNanos();
+
+        private final boolean[] window = new boolean[WINDOW_SIZE];
+        private int windowIndex;
+        private int windowCount;
+        private int windowTimeouts;
+
+        private CircuitState state = CircuitState.CLOSED;
+        private long openedAt;
+        private boolean probeInFlight;
+
+        synchronized Admission tryAcquire() {
+            if (state == CircuitState.OPEN) {
+                if (System.nanoTime() - openedAt < OPEN_NANOS) {
+                    return Admission.REJECTED;
+                }
+                state = CircuitState.HALF_OPEN;
+            }
+            if (state == CircuitState.HALF_OPEN) {
+                // only let a single request through to check if the upstream recovered
+                if (probeInFlight) {
+                    return Admission.REJECTED;
+                }
+                probeInFlight = true;
+                return Admission.PROBE;
+            }
+            return Admission.ALLOWED;
+        }
+
+        // requests sent before the circuit opened can still complete while it is
+        // open or half-open, so only the probe's outcome gets to leave HALF_OPEN
+
+        synchronized void onSuccess(boolean probe) {
+            if (probe) {
+                close();
+            } else if (state == CircuitState.CLOSED) {
+                recordOutcome(false);
+            }
+        }
+
+        synchronized void onTimeout(boolean probe) {
+            if (probe) {
+                open();
+            } else if (state == CircuitState.CLOSED) {
+                recordOutcome(true);
+                if (windowCount == WINDOW_SIZE && windowTimeouts >= TIMEOUT_RATE_THRESHOLD * WINDOW_SIZE) {
+                    open();
+                }
+            }
+            // late timeouts while OPEN or HALF_OPEN are ignored, otherwise they would
+            // keep pushing the cooldown out
+        }
+
+        synchronized void onIgnore(boolean probe) {
+            // not a timeout, so it says nothing about the upstream being slow, but a
+            // half-open probe still needs to be given back
+            if (probe) {
+                probeInFlight = false;
+            }
+        }
+
+        private void recordOutcome(boolean timedOut) {
+            // the window is a ring buffer, so we evict the oldest outcome once it's full
+            if (windowCount == WINDOW_SIZE) {
+                if (window[windowIndex]) {
+                    windowTimeouts--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = timedOut;
+            if (timedOut) {
+                windowTimeouts++;
+            }
+            windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+        }
+
+        private void resetWindow() {
+            windowIndex = 0;
+            windowCount = 0;
+            windowTimeouts = 0;
+        }
+
+        private void open() {
+            state = CircuitState.OPEN;
+            openedAt = System.nanoTime();
+            resetWindow();
+            probeInFlight = false;
+        }
+
+        private void close() {
+            state = CircuitState.CLOSED;
+            resetWindow();
+            probeInFlight = false;
+        }
+
+        synchronized CircuitState state() {
+            return state;
+        }
+    }
+
+    private static final class TracedHttpClient {
+        private static final EventType EXCHANGE_EVENT = EventType.getEventType(HttpExchangeEvent.class);
+
+        private final HttpClient delegate;
+        private final PhaseRecorder recorder;
+
+        TracedHttpClient(HttpClient delegate, PhaseRecorder recorder) {
+            this.delegate = delegate;
+            this.recorder = recorder;
+        }
+
+        <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> bodyHandler) {
+            // nobody is listening, so don't bother wrapping anything
+            if (!EXCHANGE_EVENT.isEnabled() && recorder == PhaseRecorder.NOOP) {
+                return delegate.sendAsync(request, bodyHandler);
+            }
+
+            var exchange = new Exchange(request, recorder);
+
+            BodyHandler<T> timedHandler = (HttpResponse.ResponseInfo ri) -> {
+                exchange.onHeaders(ri.statusCode());
+                return new TimedBodySubscriber<>(bodyHandler.apply(ri), exchange);
+            };
+
+            return delegate.sendAsync(request, timedHandler)
+                           .whenComplete((response, e) -> {
+                               var cause = e instanceof CompletionException ? e.getCause() : e;
+                               exchange.finish(cause);
+                           });
+        }
+    }
+
+    private static final class Exchange {
+        private final HttpExchangeEvent event = new HttpExchangeEvent();
+        private final HttpRequest request;
+        private final PhaseRecorder recorder;
+        private final long startedAt;
+        private volatile long headersAt;
+        private volatile long bodyReceivedAt;
+        private volatile int status;
+
+        Exchange(HttpRequest request, PhaseRecorder recorder) {
+            this.request = request;
+            this.recorder = recorder;
+            this.event.begin();
+            this.startedAt = System.nanoTime();
+        }
+
+        void onHeaders(int statusCode) {
+            headersAt = System.nanoTime();
+            status = statusCode;
+        }
+
+        void onBodyReceived() {
+            bodyReceivedAt = System.nanoTime();
+        }
+
+        void finish(Throwable failure) {
+            // the response future completes once the body handler produced its body.
+            // For handlers that buffer e.g. ofString, the body has been fully received
+            // by then. For streaming ones e.g. ofInputStream, it completes right after
+            // the headers and the body is read later by the caller, so we can't tell
+            // the transfer apart from whatever the caller does in between
+            var origin = originOf(request.uri());
+            // a 5xx still tells us how long the upstream takes, but it's kept apart
+            // from the successful responses
+            var outcome = failure == null && status < 500 ? Outcome.SUCCESS : Outcome.FAILURE;
+
+            // no headers means it failed before we got a response e.g. connect refused
+            // or a timeout, so there's no time to headers to speak of
+            var headersNanos = headersAt == 0 ? 0 : headersAt - startedAt;
+            var bodyNanos = headersAt != 0 && bodyReceivedAt != 0 ? bodyReceivedAt - headersAt : 0;
+
+            if (headersAt == 0) {
+                recorder.record(origin, Phase.TIME_TO_FAILURE, outcome, System.nanoTime() - startedAt);
+            } else {
+                recorder.record(origin, Phase.TIME_TO_HEADERS, outcome, headersNanos);
+            }
+            if (bodyNanos != 0) {
+                recorder.record(origin, Phase.BODY, outcome, bodyNanos);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.origin = origin;
+                event.method = request.method();
+                event.status = status;
+                event.timeToHeaders = headersNanos;
+                event.bodyTime = bodyNanos;
+                event.failure = failure == null ? null : failure.toString();
+                event.commit();
+            }
+        }
+    }
+
+    private static final class TimedBodySubscriber<T> implements BodySubscriber<T> {
+        private final BodySubscriber<T> delegate;
+        private final Exchange exchange;
+
+        TimedBodySubscriber(BodySubscriber<T> delegate, Exchange exchange) {
+            this.delegate = delegate;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            delegate.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            // this happens before a buffering subscriber completes its body, and
+            // therefore before the response future completes
+            exchange.onBodyReceived();
+            delegate.onComplete();
+        }
+    }
+
+    private static final class QueueTimingExecutor implements Executor {
+        private static final EventType QUEUE_EVENT = EventType.getEventType(ExecutorQueueEvent.class);
+
+        private final Executor delegate;
+        private final PhaseRecorder recorder;
+
+        QueueTimingExecutor(Executor delegate, PhaseRecorder recorder) {
+            this.delegate = delegate;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!QUEUE_EVENT.isEnabled() && recorder == PhaseRecorder.NOOP) {
+                delegate.execute(command);
+                return;
+            }
+
+            var event = new ExecutorQueueEvent();
+            event.begin();
+            var enqueuedAt = System.nanoTime();
+            delegate.execute(() -> {
+                recorder.record(PhaseRecorder.ANY_ORIGIN, Phase.EXECUTOR_QUEUE, Outcome.SUCCESS,
+                        System.nanoTime() - enqueuedAt);
+                event.commit();
+                command.run();
+            });
+        }
+    }
+
+    @Name("com.github.lpedrosa.HttpExchange")
+    @Label("HTTP Exchange")
+    @Category({ "HTTP Client" })
+    @Description("A request sent through the TracedHttpClient, from sending it until its body is fully received")
+    private static final class HttpExchangeEvent extends Event {
+        @Label("Origin")
+        String origin;
+
+        @Label("Method")
+        String method;
+
+        @Label("Status")
+        @Description("Response status code, 0 if no response was received")
+        int status;
+
+        @Label("Time To Headers")
+        @Description("Includes connecting and the TLS handshake, which the httpclient doesn't expose. "
+                + "0 if the request failed before a response arrived")
+        @Timespan(Timespan.NANOSECONDS)
+        long timeToHeaders;
+
+        @Label("Body Time")
+        @Description("0 for streaming bodies e.g. ofInputStream, which the caller reads after the exchange completes")
+        @Timespan(Timespan.NANOSECONDS)
+        long bodyTime;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("com.github.lpedrosa.ExecutorQueue")
+    @Label("HTTP Client Executor Queueing")
+    @Category({ "HTTP Client" })
+    @Description("Time a task of the httpclient spent waiting for an executor thread")
+    private static final class ExecutorQueueEvent extends Event {
+    }
+
+    @Name("com.github.lpedrosa.JsonDecode")
+    @Label("JSON Decode")
+    @Category({ "HTTP Client" })
+    @Description("Includes reading the body, since the stream is consumed while decoding")
+    private static final class JsonDecodeEvent extends Event {
+        @Label("Origin")
+        String origin;
+
+        @Label("Target Type")
+        String targetType;
+
+        @Label("Status")
+        int status;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    private enum Phase {
+        EXECUTOR_QUEUE, TIME_TO_HEADERS, TIME_TO_FAILURE, BODY, JSON_DECODE
+    }
+
+    private enum Outcome {
+        SUCCESS, FAILURE
+    }
+
+    private interface PhaseRecorder {
+        // the executor runs the httpclient's own tasks, which we can't attribute to
+        // a single request (and therefore origin)
+        String ANY_ORIGIN = "*";
+
+        PhaseRecorder NOOP = (origin, phase, outcome, nanos) -> {
+        };
+
+        void record(String origin, Phase phase, Outcome outcome, long nanos);
+    }
+
+    private static final class PhaseHistograms implements PhaseRecorder {
+        private final Map<PhaseKey, Histogram> histograms = new ConcurrentHashMap<>();
+
+        @Override
+        public void record(String origin, Phase phase, Outcome outcome, long nanos) {
+            histograms.computeIfAbsent(new PhaseKey(origin, phase, outcome), k -> new Histogram())
+                      .record(nanos);
+        }
+
+        public Optional<Histogram> get(String origin, Phase phase, Outcome outcome) {
+            return Optional.ofNullable(histograms.get(new PhaseKey(origin, phase, outcome)));
+        }
+
+        @Override
+        public String toString() {
+            return histograms.entrySet()
+                             .stream()
+                             .sorted(Map.Entry.comparingByKey(PhaseKey.ORDER))
+                             .map(e -> String.format("\t %s: %s", e.getKey(), e.getValue()))
+                             .collect(Collectors.joining(System.lineSeparator()));
+        }
+    }
+
+    private static final class PhaseKey {
+        private static final Comparator<PhaseKey> ORDER = Comparator.comparing((PhaseKey k) -> k.origin)
+                                                                    .thenComparing(k -> k.phase)
+                                                                    .thenComparing(k -> k.outcome);
+
+        private final String origin;
+        private final Phase phase;
+        private final Outcome outcome;
+
+        PhaseKey(String origin, Phase phase, Outcome outcome) {
+            this.origin = origin;
+            this.phase = phase;
+            this.outcome = outcome;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PhaseKey)) {
+                return false;
+            }
+            var other = (PhaseKey) o;
+            return origin.equals(other.origin) && phase == other.phase && outcome == other.outcome;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origin, phase, outcome);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s", origin, phase, outcome);
+        }
+    }
+
+    private static final class Histogram {
+        // upper bounds in millis, anything slower ends up in the last bucket
+        private static final long[] BOUNDS_MILLIS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500 };
+        // we compare against nanos, converting the sample to millis would truncate
+        // it e.g. 1.9ms would end up in the 1ms bucket
+        private static final long[] BOUNDS_NANOS = LongStream.of(BOUNDS_MILLIS)
+                                                             .map(TimeUnit.MILLISECONDS::toNanos)
+                                                             .toArray();
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+
+            var i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        @Override
+        public String toString() {
+            var sb = new StringBuilder();
+            sb.append(String.format("count=%d, total=%dms", getCount(),
+                    TimeUnit.NANOSECONDS.toMillis(getTotalNanos())));
+            for (var i = 0; i < buckets.length(); i++) {
+                var label = i < BOUNDS_MILLIS.length
+                        ? "<=" + BOUNDS_MILLIS[i] + "ms"
+                        : ">" + BOUNDS_MILLIS[i - 1] + "ms";
+                sb.append(String.format(", %s=%d", label, buckets.get(i)));
+            }
+            return sb.toString();
+        }
+    }
+
     private static final class AllowAllTrustManager implements X509TrustManager {
 
         private static final AllowAllTrustManager INSTANCE = new AllowAllTrustManager();